@@ -1,9 +1,11 @@
 package com.influx3xtend.engine;
 
 
+import com.influx3xtend.model.AlignedSeries;
 import com.influxdb.v3.client.Point;
 import jakarta.annotation.Nonnull;
 import org.duckdb.DuckDBConnection;
+import org.duckdb.DuckDBDriver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
@@ -11,18 +13,29 @@ import org.springframework.stereotype.Service;
 import java.io.File;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -32,9 +45,22 @@ import java.util.stream.Collectors;
  * 移除了复杂的组件组合和不必要的功能，使其更轻量。
  */
 @Service
-public class DuckDBAnalysisEngineAdapter implements AnalysisEngineAdapter {
+public class DuckDBAnalysisEngineAdapter implements AnalysisEngineAdapter, AutoCloseable {
 
     private static final Logger logger = LoggerFactory.getLogger(DuckDBAnalysisEngineAdapter.class);
+    /**
+     * 测量名、字段名只允许字母、数字、下划线和中划线，防止拼接SQL时注入
+     */
+    private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_\\-]*");
+    /**
+     * 单个分组对齐网格的最大点数，防止过小的间隔生成超大网格
+     */
+    private static final long MAX_ALIGN_GRID_POINTS = 1_000_000L;
+    /**
+     * 前向填充/插值时在网格前后额外扫描的时间，与按天划分的parquet目录对应，即前后各多读一个分区
+     */
+    private static final Duration ALIGN_FILL_LOOKAROUND = Duration.ofDays(1);
+    private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
     /**
      * DuckDB 连接实例，默认只读
      */
@@ -45,11 +71,23 @@ public class DuckDBAnalysisEngineAdapter implements AnalysisEngineAdapter {
      * 构造函数。
      */
     public DuckDBAnalysisEngineAdapter(String parquetDir) throws SQLException {
-        this.duckdbConnection = (DuckDBConnection) DriverManager.getConnection("jdbc:duckdb:");
+        Properties properties = new Properties();
+        // 开启流式结果，大结果集按块从 DuckDB 取回，不在原生侧整体物化
+        properties.setProperty(DuckDBDriver.JDBC_STREAM_RESULTS, String.valueOf(true));
+        this.duckdbConnection = (DuckDBConnection) DriverManager.getConnection("jdbc:duckdb:", properties);
         PARQUET_BASE_DIR = parquetDir;
         logger.info("DuckDBAnalysisEngineAdapter initialized with Parquet directory: {}", PARQUET_BASE_DIR);
     }
 
+    /**
+     * 关闭共享的 DuckDB 连接，释放内存数据库实例。由Spring容器销毁Bean时调用，手动创建的实例需自行关闭。
+     */
+    @Override
+    public void close() throws SQLException {
+        duckdbConnection.close();
+        logger.info("DuckDBAnalysisEngineAdapter closed.");
+    }
+
     /**
      * DuckDB 适配器不支持写入操作。
      *
@@ -77,7 +115,8 @@ public class DuckDBAnalysisEngineAdapter implements AnalysisEngineAdapter {
         long startTime = System.currentTimeMillis();
         logger.info("Executing DuckDB query: {}", query);
 
-        try (DuckDBConnection connection = duckdbConnection;
+        // 每次查询使用独立连接，避免关闭共享的 DuckDB 连接
+        try (Connection connection = duckdbConnection.duplicate();
              Statement statement = connection.createStatement();
              ResultSet resultSet = statement.executeQuery(query)) {
 
@@ -163,6 +202,327 @@ public class DuckDBAnalysisEngineAdapter implements AnalysisEngineAdapter {
         return sql.toString();
     }
 
+    /**
+     * 将多个测量按固定时间网格对齐，并以列式宽表分批流式返回。
+     * 重采样、填充与关联全部在 DuckDB 内完成，避免在 Java 侧嵌套循环拼接；
+     * 结果按行序切成最多 batchSize 行的列式块依次交给 consumer，Java 侧最多只持有一个批次。
+     * 每个批次的数组归 consumer 所有，适配器不会复用。
+     *
+     * @param measurementFields 测量名 -> 需要对齐的字段列表，按插入顺序输出列
+     * @param keyColumn         分组列（如 location），为 null 时不分组
+     * @param startTime         网格起点（含），系统默认时区
+     * @param endTime           网格终点（含），系统默认时区
+     * @param interval          网格间隔，最小 1 毫秒
+     * @param fillPolicy        缺失值填充策略
+     * @param batchSize         每批最大行数
+     * @param consumer          批次消费者，按分组、时间升序依次回调
+     */
+    public void alignMeasurements(Map<String, List<String>> measurementFields, String keyColumn,
+                                  LocalDateTime startTime, LocalDateTime endTime,
+                                  Duration interval, FillPolicy fillPolicy,
+                                  int batchSize, @Nonnull Consumer<AlignedSeries> consumer) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        String query = buildAlignQuery(measurementFields, keyColumn, startTime, endTime, interval, fillPolicy);
+        List<String> columnNames = alignColumnNames(measurementFields, keyColumn);
+
+        long startMillis = System.currentTimeMillis();
+        // 使用独立连接，避免关闭共享的 DuckDB 连接；连接开启了流式结果，DuckDB 侧按块产出而不是整体物化
+        try (DuckDBConnection connection = (DuckDBConnection) duckdbConnection.duplicate();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(query)) {
+
+            int offset = keyColumn != null ? 1 : 0;
+            long total = 0;
+            int rows = 0;
+            long[] times = new long[batchSize];
+            String[] keys = keyColumn != null ? new String[batchSize] : null;
+            double[][] values = new double[columnNames.size()][batchSize];
+
+            while (resultSet.next()) {
+                if (keys != null) {
+                    keys[rows] = resultSet.getString(1);
+                }
+                times[rows] = resultSet.getLong(offset + 1);
+                for (int c = 0; c < values.length; c++) {
+                    double value = resultSet.getDouble(offset + 2 + c);
+                    values[c][rows] = resultSet.wasNull() ? Double.NaN : value;
+                }
+                if (++rows == batchSize) {
+                    consumer.accept(toAlignedSeries(keyColumn, columnNames, times, keys, values, rows));
+                    total += rows;
+                    rows = 0;
+                    times = new long[batchSize];
+                    keys = keyColumn != null ? new String[batchSize] : null;
+                    values = new double[columnNames.size()][batchSize];
+                }
+            }
+            if (rows > 0) {
+                consumer.accept(toAlignedSeries(keyColumn, columnNames, times, keys, values, rows));
+                total += rows;
+            }
+
+            long endMillis = System.currentTimeMillis();
+            logger.debug("DuckDB align query executed successfully, returned {} rows, cost: {}ms", total, endMillis - startMillis);
+
+        } catch (SQLException e) {
+            logger.error("Failed to execute DuckDB align query: {}, error: {}", query, e.getMessage(), e);
+            throw new RuntimeException("DuckDB align query execution failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 将一个批次的数组包装为结果，不足一批时截断到实际行数
+     */
+    private static AlignedSeries toAlignedSeries(String keyColumn, List<String> columnNames, long[] times,
+                                                 String[] keys, double[][] values, int rows) {
+        boolean full = rows == times.length;
+        Map<String, double[]> columns = new LinkedHashMap<>(columnNames.size());
+        for (int c = 0; c < values.length; c++) {
+            columns.put(columnNames.get(c), full ? values[c] : Arrays.copyOf(values[c], rows));
+        }
+        return new AlignedSeries(keyColumn, full ? times : Arrays.copyOf(times, rows),
+                keys == null || full ? keys : Arrays.copyOf(keys, rows), columns);
+    }
+
+    /**
+     * 构建多测量对齐SQL
+     * 1. 每个测量只扫描一次时间范围内的parquet文件，按 time_bucket 重采样（桶内取均值）；
+     * 2. 以 generate_series 生成网格，与各分组做笛卡尔积；
+     * 3. NULL 策略按桶等值关联；PREVIOUS/LINEAR 将网格与观测桶合并为一条时间线，
+     *    用 last_value/first_value(... IGNORE NULLS) 窗口一次求出该测量所有字段的前/后有效值，
+     *    每个测量只排序一次、关联一次，代价与字段数无关（仅增加窗口列），最后输出一张宽表。
+     * 时间均按 UTC 处理（InfluxDB 3 的 time 列为不带时区的 UTC 时间）。
+     * PREVIOUS/LINEAR 会在网格前后各多扫描一天，以取到网格外最近的观测值，输出网格仍为 [startTime, endTime]；
+     * 分组值为 NULL 的数据不参与对齐；时间范围内没有任何文件的测量，其列全部为 NULL，所有测量都没有文件时才报错。
+     */
+    public String buildAlignQuery(Map<String, List<String>> measurementFields, String keyColumn,
+                                  LocalDateTime startTime, LocalDateTime endTime,
+                                  Duration interval, FillPolicy fillPolicy) {
+        if (measurementFields == null || measurementFields.isEmpty()) {
+            throw new IllegalArgumentException("At least one measurement is required for alignment.");
+        }
+        if (startTime == null || endTime == null || startTime.isAfter(endTime)) {
+            throw new IllegalArgumentException("A valid time range is required for alignment: " + startTime + " - " + endTime);
+        }
+        if (interval == null || interval.toMillis() <= 0) {
+            throw new IllegalArgumentException("Alignment interval must be at least 1ms: " + interval);
+        }
+        if (fillPolicy == null) {
+            throw new IllegalArgumentException("Fill policy cannot be null.");
+        }
+        List<String> series = alignColumnNames(measurementFields, keyColumn);
+
+        LocalDateTime start = toUtc(startTime);
+        LocalDateTime end = toUtc(endTime);
+        LocalDateTime endExclusive = end.plus(interval);
+        long gridPoints = Duration.between(start, end).toMillis() / interval.toMillis() + 1;
+        if (gridPoints > MAX_ALIGN_GRID_POINTS) {
+            throw new IllegalArgumentException("Alignment grid too large: " + gridPoints
+                    + " points per series, max " + MAX_ALIGN_GRID_POINTS + ". Use a larger interval or a shorter range.");
+        }
+        // 前向填充/插值需要看到网格之外最近的观测值，扫描范围前后各多读一个分区
+        Duration lookaround = fillPolicy == FillPolicy.NULL ? Duration.ZERO : ALIGN_FILL_LOOKAROUND;
+        LocalDateTime scanStart = start.minus(lookaround);
+        LocalDateTime scanEnd = endExclusive.plus(lookaround);
+        String step = "INTERVAL '" + interval.toMillis() + " milliseconds'";
+        String origin = timestampLiteral(start);
+        boolean grouped = keyColumn != null;
+
+        StringBuilder sql = new StringBuilder("WITH ");
+        StringBuilder windows = new StringBuilder();
+        StringBuilder select = new StringBuilder(" SELECT ");
+        StringBuilder joins = new StringBuilder(" FROM grid");
+        if (grouped) {
+            select.append("grid.sk AS ").append(quote(keyColumn)).append(", ");
+        }
+        select.append("epoch_ms(grid.ts) AS \"time\"");
+        String keyJoin = grouped ? "grid.sk = %1$s.sk AND " : "";
+        int m = 0;
+        int seriesIndex = 0;
+        for (Map.Entry<String, List<String>> entry : measurementFields.entrySet()) {
+            String measurement = entry.getKey();
+            List<String> fields = entry.getValue();
+
+            // 只保留实际存在的日期目录，避免 parquet_scan 因空匹配报错
+            List<String> paths = collectDirsByDateRange(measurement, scanStart.toLocalDate(), scanEnd.toLocalDate())
+                    .stream()
+                    .filter(p -> new File(p).exists())
+                    .toList();
+            if (paths.isEmpty()) {
+                // 没有任何文件的测量（如设备离线、数据尚未持久化）不生成CTE，其输出列直接为 NULL
+                logger.warn("No parquet directory found for measurement '{}' between {} and {}, its columns will be null",
+                        measurement, startTime, endTime);
+                for (int f = 0; f < fields.size(); f++) {
+                    select.append(", NULL AS ").append(quote(series.get(seriesIndex++)));
+                }
+                continue;
+            }
+
+            sql.append("m").append(m).append(" AS MATERIALIZED (SELECT ");
+            if (grouped) {
+                sql.append(quote(keyColumn)).append(" AS sk, ");
+            }
+            sql.append("time_bucket(").append(step).append(", CAST(time AS TIMESTAMP), ").append(origin).append(") AS bucket");
+            for (int f = 0; f < fields.size(); f++) {
+                sql.append(", avg(").append(quote(fields.get(f))).append(") AS f").append(f);
+            }
+            sql.append(" FROM parquet_scan([")
+                    .append(paths.stream()
+                            .map(p -> "'" + p + "/**/*.parquet'")
+                            .collect(Collectors.joining(", ")))
+                    // InfluxDB 3 按块写文件，字段/标签中途新增时各文件结构不同，按列名合并，缺失列读为 NULL
+                    .append("], union_by_name = true)")
+                    .append(" WHERE time >= ").append(timestampLiteral(scanStart))
+                    .append(" AND time < ").append(timestampLiteral(scanEnd))
+                    .append(" GROUP BY ALL), ");
+
+            String joined = "j" + m;
+            if (fillPolicy == FillPolicy.NULL) {
+                joins.append(" LEFT JOIN m").append(m).append(" AS ").append(joined)
+                        .append(" ON ").append(String.format(keyJoin, joined)).append("grid.ts = ").append(joined).append(".bucket");
+                for (int f = 0; f < fields.size(); f++) {
+                    select.append(", ").append(joined).append(".f").append(f)
+                            .append(" AS ").append(quote(series.get(seriesIndex++)));
+                }
+            } else {
+                // 网格点与观测桶（含网格外的前后观测）合并为一条时间线，按分组排序一次，
+                // 用 IGNORE NULLS 窗口为每个字段取前/后最近的有效值及其时间，NULL 字段值不会覆盖之前的有效值
+                windows.append(", w").append(m).append(" AS (SELECT ");
+                if (grouped) {
+                    windows.append("sk, ");
+                }
+                windows.append("ts");
+                for (int f = 0; f < fields.size(); f++) {
+                    windows.append(", last_value(CASE WHEN f").append(f).append(" IS NOT NULL THEN ts END IGNORE NULLS) OVER pw AS pt").append(f)
+                            .append(", last_value(f").append(f).append(" IGNORE NULLS) OVER pw AS pv").append(f);
+                    if (fillPolicy == FillPolicy.LINEAR) {
+                        windows.append(", first_value(CASE WHEN f").append(f).append(" IS NOT NULL THEN ts END IGNORE NULLS) OVER nw AS nt").append(f)
+                                .append(", first_value(f").append(f).append(" IGNORE NULLS) OVER nw AS nv").append(f);
+                    }
+                }
+                windows.append(" FROM (SELECT ");
+                if (grouped) {
+                    windows.append("COALESCE(grid.sk, o.sk) AS sk, ");
+                }
+                windows.append("COALESCE(grid.ts, o.bucket) AS ts");
+                for (int f = 0; f < fields.size(); f++) {
+                    windows.append(", o.f").append(f);
+                }
+                windows.append(" FROM grid FULL OUTER JOIN (SELECT * FROM m").append(m);
+                if (grouped) {
+                    windows.append(" WHERE sk IS NOT NULL");
+                }
+                windows.append(") AS o ON ").append(String.format(keyJoin, "o")).append("grid.ts = o.bucket)");
+                String partition = grouped ? "PARTITION BY sk " : "";
+                windows.append(" WINDOW pw AS (").append(partition).append("ORDER BY ts ROWS BETWEEN UNBOUNDED PRECEDING AND CURRENT ROW)")
+                        .append(", nw AS (").append(partition).append("ORDER BY ts ROWS BETWEEN CURRENT ROW AND UNBOUNDED FOLLOWING))");
+
+                joins.append(" LEFT JOIN w").append(m).append(" AS ").append(joined)
+                        .append(" ON ").append(String.format(keyJoin, joined)).append("grid.ts = ").append(joined).append(".ts");
+                for (int f = 0; f < fields.size(); f++) {
+                    String pt = joined + ".pt" + f;
+                    String pv = joined + ".pv" + f;
+                    if (fillPolicy == FillPolicy.PREVIOUS) {
+                        select.append(", ").append(pv);
+                    } else {
+                        String nt = joined + ".nt" + f;
+                        String nv = joined + ".nv" + f;
+                        select.append(", CASE WHEN ").append(pt).append(" = ").append(nt).append(" THEN ").append(pv)
+                                .append(" ELSE ").append(pv).append(" + (").append(nv).append(" - ").append(pv).append(")")
+                                .append(" * (epoch_ms(grid.ts) - epoch_ms(").append(pt).append("))")
+                                .append(" / CAST(epoch_ms(").append(nt).append(") - epoch_ms(").append(pt).append(") AS DOUBLE) END");
+                    }
+                    select.append(" AS ").append(quote(series.get(seriesIndex++)));
+                }
+            }
+            m++;
+        }
+        if (m == 0) {
+            throw new IllegalArgumentException("No parquet directory found for any measurement in "
+                    + measurementFields.keySet() + " between " + startTime + " and " + endTime);
+        }
+
+        sql.append("grid AS (SELECT ");
+        if (grouped) {
+            sql.append("k.sk, ");
+        }
+        sql.append("g.ts FROM generate_series(").append(origin).append(", ").append(timestampLiteral(end))
+                .append(", ").append(step).append(") AS g(ts)");
+        if (grouped) {
+            sql.append(" CROSS JOIN (");
+            for (int i = 0; i < m; i++) {
+                if (i > 0) {
+                    sql.append(" UNION ");
+                }
+                sql.append("SELECT sk FROM m").append(i).append(" WHERE sk IS NOT NULL");
+            }
+            sql.append(") AS k");
+        }
+        sql.append(")");
+
+        sql.append(windows).append(select).append(joins).append(" ORDER BY ");
+        if (grouped) {
+            sql.append("grid.sk, ");
+        }
+        sql.append("grid.ts");
+
+        logger.info("Generated DuckDB align SQL: {}", sql);
+        return sql.toString();
+    }
+
+    /**
+     * 校验测量名、字段名并生成输出列名（测量名_字段名）。
+     * 标识符本身可能包含下划线，不同组合可能得到相同列名，也可能与 time、分组列重名，此时直接拒绝，避免结果列被静默覆盖。
+     */
+    private List<String> alignColumnNames(Map<String, List<String>> measurementFields, String keyColumn) {
+        // DuckDB 标识符大小写不敏感，按小写判重
+        Set<String> used = new HashSet<>();
+        used.add("time");
+        if (keyColumn != null) {
+            checkIdentifier(keyColumn);
+            if (!used.add(keyColumn.toLowerCase())) {
+                throw new IllegalArgumentException("Key column cannot be named '" + keyColumn + "', it is reserved for the grid time");
+            }
+        }
+        List<String> columnNames = new ArrayList<>();
+        measurementFields.forEach((measurement, fields) -> {
+            checkIdentifier(measurement);
+            if (fields == null || fields.isEmpty()) {
+                throw new IllegalArgumentException("No fields specified for measurement: " + measurement);
+            }
+            for (String field : fields) {
+                checkIdentifier(field);
+                String columnName = measurement + "_" + field;
+                if (!used.add(columnName.toLowerCase())) {
+                    throw new IllegalArgumentException("Duplicate aligned column name '" + columnName
+                            + "' for measurement '" + measurement + "' and field '" + field + "'");
+                }
+                columnNames.add(columnName);
+            }
+        });
+        return columnNames;
+    }
+
+    private void checkIdentifier(String name) {
+        if (name == null || !IDENTIFIER_PATTERN.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid measurement or column name: " + name);
+        }
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier + "\"";
+    }
+
+    private static LocalDateTime toUtc(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).withZoneSameInstant(ZoneOffset.UTC).toLocalDateTime();
+    }
+
+    private static String timestampLiteral(LocalDateTime time) {
+        return "TIMESTAMP '" + TIMESTAMP_FORMATTER.format(time) + "'";
+    }
+
     /**
      * 根据时间范围收集目录
      */
@@ -0,0 +1,19 @@
+package com.influx3xtend.engine;
+
+/**
+ * 多测量对齐时，网格点上无观测值的填充策略。
+ */
+public enum FillPolicy {
+    /**
+     * 沿用前一个有值网格点的数据
+     */
+    PREVIOUS,
+    /**
+     * 取前后两个有值网格点按时间线性插值，任一侧缺失则为空
+     */
+    LINEAR,
+    /**
+     * 不填充，保持为空
+     */
+    NULL
+}
@@ -0,0 +1,38 @@
+package com.influx3xtend.model;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.Map;
+
+/**
+ * 多测量对齐后的宽表结果（一个批次），按列存储，避免逐行创建对象。
+ * 第 i 行由 times[i]、keys[i] 以及各数据列的第 i 个元素组成；缺失值以 {@link Double#NaN} 表示。
+ *
+ * @author panda00hi
+ * @date 2026.10.19
+ */
+@Getter
+@RequiredArgsConstructor
+public class AlignedSeries {
+    /**
+     * 分组列名（如 location），未分组时为 null
+     */
+    private final String keyColumn;
+    /**
+     * 网格时间点，UTC 毫秒时间戳
+     */
+    private final long[] times;
+    /**
+     * 每行对应的分组值，未分组时为 null
+     */
+    private final String[] keys;
+    /**
+     * 数据列，列名为 测量名_字段名，保持请求时的顺序
+     */
+    private final Map<String, double[]> columns;
+
+    public int size() {
+        return times.length;
+    }
+}
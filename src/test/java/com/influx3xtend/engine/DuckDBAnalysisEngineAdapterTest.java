@@ -1,13 +1,36 @@
 package com.influx3xtend.engine;
 
 import com.alibaba.fastjson2.JSONObject;
+import com.influx3xtend.model.AlignedSeries;
 import com.influx3xtend.model.TemperatureData;
 import jakarta.annotation.Resource;
+import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.boot.test.context.SpringBootTest;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 /**
  * @author panda00hi
@@ -37,6 +60,220 @@ class DuckDBAnalysisEngineAdapterTest {
 
     }
 
+    /**
+     * 对齐测试使用临时目录下按 InfluxDB 3 目录结构生成的parquet文件，不依赖共享的适配器实例和本地数据。
+     * 网格：START ~ START+50min，间隔10分钟，共6个点。
+     */
+    @Test
+    void alignMeasurementsWithNullFill() throws Exception {
+        AlignedSeries series = align(FillPolicy.NULL, 100);
+
+        assertArrayEquals(new String[]{"a", "a", "a", "a", "a", "a", "b", "b", "b", "b", "b", "b"}, series.getKeys());
+        assertArrayEquals(expectedTimes(2), series.getTimes());
+        assertArrayEquals(new double[]{NaN, 3, NaN, NaN, 7, NaN, NaN, NaN, NaN, NaN, NaN, NaN},
+                series.getColumns().get("temperature_value"), DELTA);
+        assertArrayEquals(new double[]{10, 15, 20, NaN, NaN, NaN, NaN, NaN, NaN, 30, NaN, NaN},
+                series.getColumns().get("weather_temp"), DELTA);
+        assertArrayEquals(new double[]{50, NaN, NaN, 70, NaN, NaN, NaN, NaN, NaN, 80, NaN, NaN},
+                series.getColumns().get("weather_hum"), DELTA);
+    }
+
+    @Test
+    void alignMeasurementsWithPreviousFill() throws Exception {
+        AlignedSeries series = align(FillPolicy.PREVIOUS, 100);
+
+        assertArrayEquals(new String[]{"a", "a", "a", "a", "a", "a", "b", "b", "b", "b", "b", "b"}, series.getKeys());
+        assertArrayEquals(expectedTimes(2), series.getTimes());
+        // 起点取前一天分区中 -60min 的观测值
+        assertArrayEquals(new double[]{1, 3, 3, 3, 7, 7, NaN, NaN, NaN, NaN, NaN, NaN},
+                series.getColumns().get("temperature_value"), DELTA);
+        assertArrayEquals(new double[]{10, 15, 20, 20, 20, 20, NaN, NaN, NaN, 30, 30, 30},
+                series.getColumns().get("weather_temp"), DELTA);
+        // +20min 的 hum 为空，不能覆盖前一个有效值
+        assertArrayEquals(new double[]{50, 50, 50, 70, 70, 70, NaN, NaN, NaN, 80, 80, 80},
+                series.getColumns().get("weather_hum"), DELTA);
+    }
+
+    @Test
+    void alignMeasurementsWithLinearFill() throws Exception {
+        AlignedSeries series = align(FillPolicy.LINEAR, 100);
+
+        assertArrayEquals(new String[]{"a", "a", "a", "a", "a", "a", "b", "b", "b", "b", "b", "b"}, series.getKeys());
+        assertArrayEquals(expectedTimes(2), series.getTimes());
+        // 首尾分别用网格外 -60min、+90min 的观测值插值
+        assertArrayEquals(new double[]{1 + 2 * 60.0 / 70, 3, 3 + 4 / 3.0, 3 + 8 / 3.0, 7, 8, NaN, NaN, NaN, NaN, NaN, NaN},
+                series.getColumns().get("temperature_value"), DELTA);
+        assertArrayEquals(new double[]{10, 15, 20, NaN, NaN, NaN, NaN, NaN, NaN, 30, NaN, NaN},
+                series.getColumns().get("weather_temp"), DELTA);
+        assertArrayEquals(new double[]{50, 50 + 20 / 3.0, 50 + 40 / 3.0, 70, NaN, NaN, NaN, NaN, NaN, 80, NaN, NaN},
+                series.getColumns().get("weather_hum"), DELTA);
+    }
+
+    @Test
+    void alignMeasurementsWithoutKeyColumn() throws Exception {
+        List<AlignedSeries> batches = new ArrayList<>();
+        try (DuckDBAnalysisEngineAdapter adapter = new DuckDBAnalysisEngineAdapter(parquetDir.toString())) {
+            adapter.alignMeasurements(Map.of("temperature", List.of("value")),
+                    null, START, START.plusMinutes(50), Duration.ofMinutes(10), FillPolicy.PREVIOUS, 100, batches::add);
+        }
+
+        assertEquals(1, batches.size());
+        AlignedSeries series = batches.get(0);
+        assertNull(series.getKeys());
+        assertArrayEquals(expectedTimes(1), series.getTimes());
+        // 不分组时 location 为空的数据也参与对齐
+        assertArrayEquals(new double[]{99, 3, 3, 3, 7, 7}, series.getColumns().get("temperature_value"), DELTA);
+    }
+
+    @Test
+    void alignMeasurementsWithMissingMeasurement() throws Exception {
+        Map<String, List<String>> measurementFields = measurementFields();
+        measurementFields.put("pressure", List.of("value"));
+        List<AlignedSeries> batches = new ArrayList<>();
+        try (DuckDBAnalysisEngineAdapter adapter = new DuckDBAnalysisEngineAdapter(parquetDir.toString())) {
+            adapter.alignMeasurements(measurementFields, "location",
+                    START, START.plusMinutes(50), Duration.ofMinutes(10), FillPolicy.PREVIOUS, 100, batches::add);
+        }
+
+        AlignedSeries series = batches.get(0);
+        assertEquals(List.of("temperature_value", "weather_temp", "weather_hum", "pressure_value"),
+                List.copyOf(series.getColumns().keySet()));
+        // 没有文件的测量整列为空，其它测量不受影响
+        double[] missing = new double[12];
+        Arrays.fill(missing, NaN);
+        assertArrayEquals(missing, series.getColumns().get("pressure_value"), DELTA);
+        assertArrayEquals(new double[]{10, 15, 20, 20, 20, 20, NaN, NaN, NaN, 30, 30, 30},
+                series.getColumns().get("weather_temp"), DELTA);
+    }
+
+    @Test
+    void alignMeasurementsInBatches() throws Exception {
+        List<AlignedSeries> batches = new ArrayList<>();
+        try (DuckDBAnalysisEngineAdapter adapter = new DuckDBAnalysisEngineAdapter(parquetDir.toString())) {
+            adapter.alignMeasurements(measurementFields(), "location",
+                    START, START.plusMinutes(50), Duration.ofMinutes(10), FillPolicy.PREVIOUS, 5, batches::add);
+        }
+
+        assertEquals(List.of(5, 5, 2), batches.stream().map(AlignedSeries::size).toList());
+        assertArrayEquals(new double[]{70, NaN, NaN, NaN, 80},
+                batches.get(1).getColumns().get("weather_hum"), DELTA);
+        assertArrayEquals(new String[]{"b", "b"}, batches.get(2).getKeys());
+    }
+
+    @Test
+    void alignMeasurementsAfterExecuteQuery() throws Exception {
+        try (DuckDBAnalysisEngineAdapter adapter = new DuckDBAnalysisEngineAdapter(parquetDir.toString())) {
+            // executeQuery 不能关闭共享连接，之后的查询仍然可用
+            adapter.executeQuery("SELECT CAST(1 AS DOUBLE) AS value", TemperatureData.class);
+            List<TemperatureData> points = adapter.executeQuery("SELECT CAST(2 AS DOUBLE) AS value", TemperatureData.class);
+            assertEquals(2.0, points.get(0).getValue());
+
+            List<AlignedSeries> batches = new ArrayList<>();
+            adapter.alignMeasurements(measurementFields(), "location",
+                    START, START.plusMinutes(50), Duration.ofMinutes(10), FillPolicy.NULL, 100, batches::add);
+            assertEquals(12, batches.get(0).size());
+        }
+    }
+
+    @Test
+    void alignMeasurementsRejectsInvalidRequests() throws Exception {
+        try (DuckDBAnalysisEngineAdapter adapter = new DuckDBAnalysisEngineAdapter(parquetDir.toString())) {
+            LocalDateTime end = START.plusMinutes(50);
+            Duration interval = Duration.ofMinutes(10);
+
+            // weather/wind_speed 与 weather_wind/speed 输出列名相同
+            Map<String, List<String>> duplicated = new LinkedHashMap<>();
+            duplicated.put("weather", List.of("wind_speed"));
+            duplicated.put("weather_wind", List.of("speed"));
+            assertThrows(IllegalArgumentException.class, () ->
+                    adapter.buildAlignQuery(duplicated, "location", START, end, interval, FillPolicy.NULL));
+            // 输出列名与分组列重名
+            assertThrows(IllegalArgumentException.class, () ->
+                    adapter.buildAlignQuery(Map.of("weather", List.of("temp")), "weather_temp", START, end, interval, FillPolicy.NULL));
+            // 分组列与网格时间列重名
+            assertThrows(IllegalArgumentException.class, () ->
+                    adapter.buildAlignQuery(measurementFields(), "TIME", START, end, interval, FillPolicy.NULL));
+            // 网格点数超过上限
+            assertThrows(IllegalArgumentException.class, () ->
+                    adapter.buildAlignQuery(measurementFields(), "location", START, START.plusDays(1), Duration.ofMillis(1), FillPolicy.NULL));
+            // 所有测量都没有文件
+            assertThrows(IllegalArgumentException.class, () ->
+                    adapter.buildAlignQuery(Map.of("pressure", List.of("value")), "location", START, end, interval, FillPolicy.NULL));
+            assertThrows(IllegalArgumentException.class, () ->
+                    adapter.buildAlignQuery(Map.of("weather", List.of("temp; DROP")), "location", START, end, interval, FillPolicy.NULL));
+        }
+    }
+
+    private static final LocalDateTime START = LocalDateTime.of(2025, 4, 19, 0, 0, 0);
+    private static final double NaN = Double.NaN;
+    private static final double DELTA = 1e-9;
+
+    @TempDir
+    static Path parquetDir;
+
+    /**
+     * 相对 START 的分钟偏移写入测试数据，time 按 InfluxDB 3 的方式存为不带时区的 UTC 纳秒时间戳
+     */
+    @BeforeAll
+    static void writeParquetFiles() throws SQLException, IOException {
+        try (Connection connection = DriverManager.getConnection("jdbc:duckdb:");
+             Statement statement = connection.createStatement()) {
+            // -60min 落在前一天分区，+90min 在网格之外，用于验证前向填充/插值的边界
+            writePoint(statement, "temperature", -60, "'a' AS location, CAST(1 AS DOUBLE) AS value");
+            writePoint(statement, "temperature", 10, "'a' AS location, CAST(2 AS DOUBLE) AS value");
+            writePoint(statement, "temperature", 12, "'a' AS location, CAST(4 AS DOUBLE) AS value");
+            writePoint(statement, "temperature", 40, "'a' AS location, CAST(7 AS DOUBLE) AS value");
+            writePoint(statement, "temperature", 90, "'a' AS location, CAST(12 AS DOUBLE) AS value");
+            writePoint(statement, "temperature", 0, "CAST(NULL AS VARCHAR) AS location, CAST(99 AS DOUBLE) AS value");
+
+            writePoint(statement, "weather", 0, "'a' AS location, CAST(10 AS DOUBLE) AS temp, CAST(50 AS DOUBLE) AS hum");
+            writePoint(statement, "weather", 20, "'a' AS location, CAST(20 AS DOUBLE) AS temp, CAST(NULL AS DOUBLE) AS hum");
+            writePoint(statement, "weather", 30, "'a' AS location, CAST(NULL AS DOUBLE) AS temp, CAST(70 AS DOUBLE) AS hum");
+            writePoint(statement, "weather", 30, "'b' AS location, CAST(30 AS DOUBLE) AS temp, CAST(80 AS DOUBLE) AS hum");
+            // 字段、标签中途新增时，较早的文件缺少对应列
+            writePoint(statement, "weather", 10, "'a' AS location, CAST(15 AS DOUBLE) AS temp");
+            writePoint(statement, "weather", 0, "CAST(5 AS DOUBLE) AS temp, CAST(5 AS DOUBLE) AS hum");
+        }
+    }
+
+    private static void writePoint(Statement statement, String measurement, int minutes, String columns)
+            throws SQLException, IOException {
+        LocalDateTime utc = START.plusMinutes(minutes).atZone(ZoneId.systemDefault())
+                .withZoneSameInstant(ZoneOffset.UTC).toLocalDateTime();
+        Path dir = parquetDir.resolve(measurement + "-1").resolve(utc.toLocalDate().toString())
+                .resolve(utc.format(DateTimeFormatter.ofPattern("HH-mm")));
+        Files.createDirectories(dir);
+        Path file = dir.resolve(String.format("%010d.parquet", Files.list(dir).count() + 1));
+        statement.execute("COPY (SELECT " + columns + ", CAST(TIMESTAMP '" + utc.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + "' AS TIMESTAMP_NS) AS time) TO '"
+                + file + "' (FORMAT parquet)");
+    }
+
+    private static Map<String, List<String>> measurementFields() {
+        Map<String, List<String>> measurementFields = new LinkedHashMap<>();
+        measurementFields.put("temperature", List.of("value"));
+        measurementFields.put("weather", List.of("temp", "hum"));
+        return measurementFields;
+    }
+
+    private static AlignedSeries align(FillPolicy fillPolicy, int batchSize) throws SQLException {
+        List<AlignedSeries> batches = new ArrayList<>();
+        try (DuckDBAnalysisEngineAdapter adapter = new DuckDBAnalysisEngineAdapter(parquetDir.toString())) {
+            adapter.alignMeasurements(measurementFields(), "location",
+                    START, START.plusMinutes(50), Duration.ofMinutes(10), fillPolicy, batchSize, batches::add);
+        }
+        assertEquals(1, batches.size());
+        return batches.get(0);
+    }
+
+    private static long[] expectedTimes(int keys) {
+        long start = START.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long[] times = new long[keys * 6];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = start + (i % 6) * Duration.ofMinutes(10).toMillis();
+        }
+        return times;
+    }
+
     @Test
     void writePoints() {
     }